@@ -0,0 +1,141 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared pool of direct (off-heap) buffers used for connection I/O.
+ *
+ * Connections borrow a buffer only while a message is being read or written, and release it
+ * right after, so idle connections do not hold any I/O memory. Buffers come in size classes
+ * (1KB, 4KB, 16KB, 64KB, 256KB, 1MB); a request is served from the smallest class that fits.
+ * Requests larger than the biggest class get a dedicated buffer that is not kept after release.
+ *
+ * Each class keeps at most MAX_IDLE_BYTES_PER_CLASS of released buffers for reuse. Anything
+ * released beyond that is left to the garbage collector, so a burst of large messages does not
+ * pin memory forever.
+ */
+public class BufferPool {
+
+   public static final int MIN_SIZE = 1024;
+   public static final int NUM_CLASSES = 6; //each class is 4 times bigger than the previous one
+   public static final int MAX_SIZE = MIN_SIZE << (2 * (NUM_CLASSES - 1));
+   public static final long MAX_IDLE_BYTES_PER_CLASS = 4L * 1024 * 1024;
+
+   private final ArrayList<ConcurrentLinkedQueue<ByteBuffer>> free;
+   private final ArrayList<AtomicInteger> idleCount;
+
+   //usage metrics
+   private final AtomicLong borrows;
+   private final AtomicLong allocations; //borrows that could not reuse a pooled buffer
+   private final AtomicLong inUseBuffers;
+   private final AtomicLong inUseBytes;
+   private final AtomicLong idleBytes;
+   private final AtomicLong peakInUseBytes;
+
+   public BufferPool() {
+      free = new ArrayList<ConcurrentLinkedQueue<ByteBuffer>>();
+      idleCount = new ArrayList<AtomicInteger>();
+      for(int i = 0; i < NUM_CLASSES; i++) {
+         free.add(new ConcurrentLinkedQueue<ByteBuffer>());
+         idleCount.add(new AtomicInteger());
+      }
+      borrows = new AtomicLong();
+      allocations = new AtomicLong();
+      inUseBuffers = new AtomicLong();
+      inUseBytes = new AtomicLong();
+      idleBytes = new AtomicLong();
+      peakInUseBytes = new AtomicLong();
+   }
+
+   /**
+    * Borrow a cleared buffer that can hold at least the given number of bytes.
+    * The buffer must be given back with release() once the I/O is done.
+    * @param  int        minCapacity number of bytes needed
+    * @return ByteBuffer             a direct buffer, with position 0 and limit set to its capacity
+    */
+   public ByteBuffer borrow(int minCapacity) {
+      borrows.incrementAndGet();
+      int sizeClass = sizeClass(minCapacity);
+      ByteBuffer buffer = null;
+      if(sizeClass != -1) {
+         buffer = free.get(sizeClass).poll();
+         if(buffer != null) {
+            idleCount.get(sizeClass).decrementAndGet();
+            idleBytes.addAndGet(-buffer.capacity());
+         } else {
+            buffer = ByteBuffer.allocateDirect(MIN_SIZE << (2 * sizeClass));
+            allocations.incrementAndGet();
+         }
+      } else {
+         buffer = ByteBuffer.allocateDirect(minCapacity); //too big to be pooled
+         allocations.incrementAndGet();
+      }
+
+      inUseBuffers.incrementAndGet();
+      long used = inUseBytes.addAndGet(buffer.capacity());
+      long peak;
+      while(used > (peak = peakInUseBytes.get()) && !peakInUseBytes.compareAndSet(peak, used));
+      buffer.clear();
+      return buffer;
+   }
+
+   /**
+    * Give back a buffer obtained from borrow(). The buffer must not be used afterwards.
+    * @param ByteBuffer buffer the buffer to return
+    */
+   public void release(ByteBuffer buffer) {
+      inUseBuffers.decrementAndGet();
+      inUseBytes.addAndGet(-buffer.capacity());
+
+      int sizeClass = sizeClass(buffer.capacity());
+      if(sizeClass == -1 || (MIN_SIZE << (2 * sizeClass)) != buffer.capacity()) {
+         return; //not one of ours, let the GC free it
+      }
+      if((idleCount.get(sizeClass).get() + 1) * (long)buffer.capacity() > MAX_IDLE_BYTES_PER_CLASS) {
+         return; //class already keeps enough spare buffers
+      }
+      idleCount.get(sizeClass).incrementAndGet();
+      idleBytes.addAndGet(buffer.capacity());
+      free.get(sizeClass).offer(buffer);
+   }
+
+   public long getInUseBuffers() {
+      return inUseBuffers.get();
+   }
+
+   public long getInUseBytes() {
+      return inUseBytes.get();
+   }
+
+   public long getIdleBytes() {
+      return idleBytes.get();
+   }
+
+   /**
+    * Summary of the pool usage, for the server output
+    * @return String buffers in use, idle and allocated, and how often borrows were served from the pool
+    */
+   public String stats() {
+      long b = borrows.get();
+      long a = allocations.get();
+      return String.format(" In use: %d buffers, %d KB (peak %d KB)\n Idle: %d KB\n Borrows: %d, new allocations: %d (%.1f%% reused)",
+         inUseBuffers.get(), inUseBytes.get() / 1024, peakInUseBytes.get() / 1024, idleBytes.get() / 1024,
+         b, a, b == 0 ? 0.0 : 100.0 * (b - a) / b);
+   }
+
+   /**
+    * Index of the smallest size class able to hold the given number of bytes
+    * @param  int size number of bytes
+    * @return int      the size class, or -1 if larger than MAX_SIZE
+    */
+   private static int sizeClass(int size) {
+      for(int i = 0; i < NUM_CLASSES; i++) {
+         if(size <= (MIN_SIZE << (2 * i))) {
+            return i;
+         }
+      }
+      return -1;
+   }
+}
@@ -23,6 +23,12 @@
  *    TELL [USER_NAME] [MESSAGE]      -  Shows [MESSAGE] as a server message to the specified user(s) only.
  *    QUIT (MESSAGE)                  -  Closes the server program. If specified, the optional (MESSAGE) is sent to all users.
  *    LIST                            -  Lists all connected users and their IP addresses
+ *    SEARCH [WORDS]                  -  Lists the most recent messages containing all of [WORDS]
+ *    POOL                            -  Shows the memory used by the connection I/O buffers
+ *    JFR [START|DUMP|STOP] (FILE)    -  Starts a flight recording of the server, or saves it to (FILE). STOP also saves the recording before ending it.
+ *                                       (FILE) is a plain file name, created in the working directory like the log file; '.jfr' is added if missing.
+ *                                       When (FILE) is omitted, a file named with a timestamp is created. Only the last 30 minutes
+ *                                       (at most 100MB) of events are kept.
  *    HELP                            -  Lists all available commands
  *
  * Where [USER_NAME] is the name, or names (delimited by a ',' character) of the target users. The single character '*' can also be used to indicate all connected users.
@@ -52,6 +58,18 @@
  * NOT - Server notification: sent by the server to the clients with a message from the server.
  * ADM - Admin Command: sent by client to server to issue an admin command. (The user must have permission to use the admin commands) The message that follows the ADM command will be executed
  * RSP - Server response: optionally sent by server following an ADM command with the response text/output.
+ * PRV - Private Message: sent by the client with the username of the recipient, a separator character ('\3') and the message. The server forwards it
+ *       to the recipient only, as PRV followed by the username of the sender, a separator character ('\3') and the message.
+ * SUB - Subscribe: sent by the client with the name, or names (delimited by a ',' character), of the users whose presence it wants to follow.
+ *       The current presence of each of those users is sent back in the next PRS. A client can follow at most 1000 users (ERC otherwise).
+ * USB - Unsubscribe: sent by the client with the name(s) of the users it no longer wants presence updates for. Same format as SUB.
+ * PRS - Presence update: sent by the server to a subscribed client. The data that follows is a list of entries delimited by a separator character ('\3'),
+ *       each one being '+' (connected) or '-' (disconnected) immediately followed by a username. Changes are batched, and only the latest state
+ *       of a user within a batch is sent.
+ * SRC - Search: sent by the client with the words to look for in the messages previously sent to the server (not case sensitive).
+ * SRR - Search results: sent by the server in response to SRC. The data that follows is a list of results delimited by a separator character ('\4'),
+ *       each one being the time the message was sent (milliseconds since epoch), a separator character ('\3'), the username of the sender,
+ *       a separator character ('\3') and the message, with any '\3' or '\4' in it replaced by a space. Results are ordered newest first.
  *
  * NOTE: the following serve to notifiy of an issue. The server and clients should be able to recover from an ERC/ERS regardless of their nature
  * The ERC and ERS may be followed by additional text to indicate where/what the error is.
@@ -65,14 +83,34 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
 import java.util.*;
 import java.awt.GraphicsEnvironment;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
 
 public class ChatServer extends Thread {
 
    public static final float VERSION_NUMBER = 0.1f;
+   public static final int PRESENCE_FLUSH_INTERVAL = 250; //milliseconds between presence update batches
+   public static final int PRESENCE_WRITE_TIMEOUT = 10000; //milliseconds a client can take to accept a presence update before being dropped
+   public static final int PRESENCE_WRITER_THREADS = 8; //PRS writes done at the same time, the others wait for a free thread
+   public static final int MAX_SUBSCRIPTIONS = 1000; //users a single client can follow
+   public static final int SEARCH_RESULT_LIMIT = 20;
+   public static final Duration RECORDING_MAX_AGE = Duration.ofMinutes(30); //older flight recorder events are discarded
+   public static final long RECORDING_MAX_SIZE = 100L * 1024 * 1024; //bytes of events kept on disk by the flight recording
 
    private boolean logToFile;
    private boolean useGUI;
@@ -80,11 +118,28 @@ public class ChatServer extends Thread {
 
    private boolean outputPaused;
    private StringBuilder consoleSave;
+   private InputStream consoleIn;
+   private PrintStream console;
 
    private ServerUI ui;
-   private ServerSocket listeningPort;
+   private Transport transport;
+   private volatile boolean acceptingConnections;
+   private Thread acceptThread;
+   private boolean exitOnQuit; //false when running inside another program, which must not be killed by QUIT
    private PrintStream logFile;
-   private ArrayList<OpenSocket> allConnections;
+   private CopyOnWriteArrayList<OpenSocket> allConnections; //changed by every connection thread, iterated for every message
+   private HashSet<OpenSocket> openSockets; //every connection not closed yet, including those that have not sent NCR
+   private HashMap<String, OpenSocket> usersByName;
+   private HashMap<String, HashSet<OpenSocket>> presenceSubscribers; //username -> sockets following that user
+   private LinkedHashSet<OpenSocket> pendingPresence; //sockets with presence updates waiting for the next batch
+   private HashSet<OpenSocket> presenceInFlight; //sockets whose PRS was handed to presenceWriters and is not written yet
+   private Timer presenceTimer;
+   private ExecutorService presenceWriters; //writes PRS messages, so that a slow client only blocks its own write
+   private MessageIndex messageIndex;
+   private BufferPool bufferPool;
+   private AtomicLong nextConnectionId;
+   private final Object recordingLock = new Object();
+   private Recording recording; //flight recording started by the JFR command, null if none. Guarded by recordingLock
    private String password;
 
    public static void main(String[] args) {
@@ -133,8 +188,8 @@ public class ChatServer extends Thread {
       }
       //end argument parsing
 
-      outputPaused = false;
-      consoleSave = new StringBuilder(64);
+      consoleIn = System.in;
+      console = System.out;
 
       //create UI (if available)
       if(!GraphicsEnvironment.isHeadless() && useGUI) {
@@ -159,11 +214,54 @@ public class ChatServer extends Thread {
       }
 
       try {
-         listeningPort = new ServerSocket(defaultPort);
+         transport = new SocketTransport(defaultPort);
       } catch(IOException e) {
          System.out.println(e.toString());
       }
-      allConnections = new ArrayList<OpenSocket>();
+
+      exitOnQuit = true;
+      startServer(date);
+   }
+
+   /**
+    * Create a server without GUI or log file, using the given transport and console.
+    * Lets the server run inside another program, e.g. with an InMemoryTransport and simulated clients.
+    * QUIT does not exit the program in this mode: it only calls shutdown(). The console thread is a daemon.
+    * @param Transport   transport  where client connections come from
+    * @param InputStream consoleIn  where admin commands are read from, instead of the keyboard
+    * @param PrintStream console    where the server output goes, instead of the screen
+    */
+   public ChatServer(Transport transport, InputStream consoleIn, PrintStream console) {
+      logToFile = false;
+      useGUI = false;
+      defaultPort = -1;
+      ui = null;
+      logFile = null;
+      this.transport = transport;
+      this.consoleIn = consoleIn;
+      this.console = console;
+
+      exitOnQuit = false;
+      this.setDaemon(true);
+      startServer(LocalDateTime.now());
+   }
+
+   /**
+    * Initialize the server state and start the threads listening to the console and to new connections
+    * @param LocalDateTime date time at which the server is started
+    */
+   private void startServer(LocalDateTime date) {
+      outputPaused = false;
+      consoleSave = new StringBuilder(64);
+      allConnections = new CopyOnWriteArrayList<OpenSocket>();
+      openSockets = new HashSet<OpenSocket>();
+      usersByName = new HashMap<String, OpenSocket>();
+      presenceSubscribers = new HashMap<String, HashSet<OpenSocket>>();
+      pendingPresence = new LinkedHashSet<OpenSocket>();
+      presenceInFlight = new HashSet<OpenSocket>();
+      messageIndex = new MessageIndex();
+      bufferPool = new BufferPool();
+      nextConnectionId = new AtomicLong();
 
       password = ""; //set up the password from file here!
 
@@ -171,7 +269,7 @@ public class ChatServer extends Thread {
       print(date.format(DateTimeFormatter.ofPattern("MM-dd-yyyy HH:mm:ss")));
       print("Starting ChatServer");
       print("ChatServer version " + ChatServer.VERSION_NUMBER);
-      print("Using port number: " + defaultPort);
+      print("Using port number: " + (defaultPort == -1 ? "none (in-process transport)" : defaultPort));
       print("Logging output to file: " + logToFile);
       print("Password set: " + !password.isEmpty());
 
@@ -181,11 +279,30 @@ public class ChatServer extends Thread {
       this.start();
 
       //start processing new connections
-      new Thread(new Runnable() {
+      acceptingConnections = transport != null;
+      if(acceptingConnections) {
+         acceptThread = new Thread(new Runnable() {
+            public void run() {
+               processConnections();
+            }
+         });
+         acceptThread.start();
+      }
+
+      //send batched presence updates
+      presenceWriters = Executors.newFixedThreadPool(PRESENCE_WRITER_THREADS, new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "presence-writer");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      presenceTimer = new Timer("presence", true);
+      presenceTimer.scheduleAtFixedRate(new TimerTask() {
          public void run() {
-            processConnections();
+            flushPresence();
          }
-      }).start();
+      }, PRESENCE_FLUSH_INTERVAL, PRESENCE_FLUSH_INTERVAL);
 
       print("Server ready.\n=============================================\n");
    }
@@ -196,18 +313,111 @@ public class ChatServer extends Thread {
     * waiting
     */
    private void processConnections() {
-      while(true) {
+      while(acceptingConnections) {
          try {
-            Socket thisSocket = listeningPort.accept();
+            Transport.Connection connection = transport.accept();
 
-            new OpenSocket(thisSocket); //create the OpenSocket object, but dont add to the allConnections yet...
+            new OpenSocket(connection); //create the OpenSocket object, but dont add to the allConnections yet...
 
          } catch(IOException e) {
-            System.out.println(e.toString());
+            if(acceptingConnections) {
+               console.println(e.toString());
+            }
          }
       }
    }
 
+   /**
+    * Stop accepting new connections. Users already connected stay connected.
+    */
+   public void stopAccepting() {
+      acceptingConnections = false;
+      try {
+         transport.close();
+      } catch(IOException e) {
+         console.println(e.toString());
+      }
+   }
+
+   /**
+    * Stop the server without exiting the program: stop accepting connections, disconnect every client
+    * (sending them the given message), stop the presence and index threads, and end the flight recording
+    * if one is running (without saving it). Waits for the connection threads to end. The console input given to the constructor is closed.
+    * @param String message message sent to every client with the DSC
+    */
+   public void shutdown(String message) {
+      if(acceptingConnections) {
+         stopAccepting();
+         if(acceptThread != Thread.currentThread()) {
+            try {
+               acceptThread.join(); //no new OpenSocket after this
+            } catch(InterruptedException e) {
+               Thread.currentThread().interrupt();
+            }
+         }
+      }
+      presenceTimer.cancel();
+      presenceWriters.shutdownNow();
+
+      ArrayList<OpenSocket> copy;
+      synchronized (openSockets) {
+         copy = new ArrayList<OpenSocket>(openSockets);
+      }
+      for(OpenSocket soc : copy) {
+         if(!soc.connection.isClosed()) { //others are already on their way out
+            soc.disconnect("", message);
+         }
+      }
+      for(OpenSocket soc : copy) {
+         if(soc != Thread.currentThread()) {
+            try {
+               soc.join();
+            } catch(InterruptedException e) {
+               Thread.currentThread().interrupt();
+            }
+         }
+      }
+
+      messageIndex.close();
+      synchronized (recordingLock) { //not saved: use JFR STOP first to keep it
+         if(recording != null) {
+            recording.close();
+            recording = null;
+         }
+      }
+      if(!exitOnQuit) {
+         try {
+            consoleIn.close(); //ends the console thread if it is waiting for input
+         } catch(IOException e) {
+            console.println(e.toString());
+         }
+      }
+   }
+
+   //
+   // Internal state, for the checks run in-process (see TransportStress)
+   //
+
+   int getConnectionCount() {
+      return allConnections.size();
+   }
+
+   int getRegisteredUserCount() {
+      synchronized (usersByName) {
+         return usersByName.size();
+      }
+   }
+
+   int getPresenceSubscriptionCount() {
+      synchronized (presenceSubscribers) {
+         return presenceSubscribers.size();
+      }
+   }
+
+   BufferPool getBufferPool() {
+      return bufferPool;
+   }
+
    /**
     * Process the given line as a command interpretation
     *
@@ -281,26 +491,45 @@ public class ChatServer extends Thread {
             if(scan.hasNextLine()) {
                message = scan.nextLine();
             }
-            ArrayList<OpenSocket> copy = new ArrayList<>(allConnections);
-            for(OpenSocket soc : copy) {
-               soc.disconnect("", message);
+            shutdown(message);
+            if(exitOnQuit) {
+               System.exit(0); //quit server program
             }
-            System.exit(0); //quit server program
          } else if (next.equals("LIST")) {
             StringBuilder sb = new StringBuilder();
-            if(allConnections.isEmpty()) {
+            ArrayList<OpenSocket> users = new ArrayList<>(allConnections);
+            if(users.isEmpty()) {
                sb.append(" No connected users");
             }
-            for(int i = 0; i < allConnections.size(); i++) {
-               OpenSocket soc = allConnections.get(i);
-               sb.append(String.format(" %-10s -- %10s", soc.userName, soc.thisSocket.getInetAddress().toString().substring(1)));
-               if(i < allConnections.size()-1) {
+            for(int i = 0; i < users.size(); i++) {
+               OpenSocket soc = users.get(i);
+               sb.append(String.format(" %-10s -- %10s", soc.userName, soc.connection.getAddress()));
+               if(i < users.size()-1) {
                   sb.append('\n');
                }
             }
             return sb.toString();
+         } else if(line.matches("SEARCH .+")) {
+            String query = scan.nextLine();
+            long start = System.nanoTime();
+            List<MessageIndex.Entry> results = messageIndex.search(query, SEARCH_RESULT_LIMIT);
+            long elapsed = (System.nanoTime() - start) / 1000;
+
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(" %d match(es) in %d.%03d ms (%s)", results.size(), elapsed / 1000, elapsed % 1000, messageIndex.stats()));
+            DateTimeFormatter format = DateTimeFormatter.ofPattern("MM-dd HH:mm:ss");
+            for(MessageIndex.Entry entry : results) {
+               LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(entry.time), ZoneId.systemDefault());
+               sb.append(String.format("\n %s %-10s: %s", time.format(format), entry.userName, entry.text));
+            }
+            return sb.toString();
+         } else if (next.equals("POOL")) {
+            long perConnection = allConnections.isEmpty() ? 0 : bufferPool.getInUseBytes() / allConnections.size();
+            return bufferPool.stats() + "\n Connections: " + allConnections.size() + ", " + perConnection + " bytes in use per connection";
+         } else if(line.matches("JFR (START|DUMP|STOP)( .+)?")) {
+            return processRecording(scan.next(), scan.hasNextLine() ? scan.nextLine().trim() : "");
          } else if (next.equals("HELP")) {
-            return "Available commands are:\n ADMIN [USER_NAME] [(y)es|(n)o]\n PSWD [PASSWORD]\n KICK [USER_NAME] [REASON]\n NOTIFY [MESSAGE]\n TELL [USER_NAME] [MESSAGE]\n QUIT (MESSAGE)\n LIST\n HELP";
+            return "Available commands are:\n ADMIN [USER_NAME] [(y)es|(n)o]\n PSWD [PASSWORD]\n KICK [USER_NAME] [REASON]\n NOTIFY [MESSAGE]\n TELL [USER_NAME] [MESSAGE]\n QUIT (MESSAGE)\n LIST\n SEARCH [WORDS]\n POOL\n JFR [START|DUMP|STOP] (FILE)\n HELP";
          } else {
 
             return null;
@@ -313,6 +542,48 @@ public class ChatServer extends Thread {
       return ""; //assume that it was successful
    }
 
+   /**
+    * Start, save or stop the flight recording
+    * @param  String action START, DUMP or STOP
+    * @param  String file   name of the file to save the recording to, in the working directory. Paths are refused,
+    *                       so that admin clients cannot write anywhere else. A file named with the current time is used if empty.
+    * @return String        result to show to the user
+    */
+   private String processRecording(String action, String file) throws Exception {
+      synchronized (recordingLock) {
+         if(action.equals("START")) {
+            if(recording != null) {
+               return "A recording is already running";
+            }
+            recording = new Recording(Configuration.getConfiguration("default"));
+            recording.setName("ChatServer");
+            recording.setToDisk(true); //the limits below only apply to recordings kept on disk
+            recording.setMaxAge(RECORDING_MAX_AGE);
+            recording.setMaxSize(RECORDING_MAX_SIZE);
+            recording.start();
+            return "Recording started";
+         }
+
+         if(recording == null) {
+            return "No recording is running";
+         }
+         if(file.isEmpty()) {
+            file = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy.MM.dd__HH.mm.ss")) + ".jfr";
+         } else if(!file.matches("[\\w\\-.]+") || file.contains("..")) {
+            return "Bad file name. Only a file name (letters, digits, '_', '-' and '.') is accepted, not a path.";
+         } else if(!file.endsWith(".jfr")) {
+            file += ".jfr";
+         }
+         recording.dump(Paths.get(file));
+         if(action.equals("STOP")) {
+            recording.close();
+            recording = null;
+            return "Recording stopped and saved to " + file;
+         }
+         return "Recording saved to " + file;
+      }
+   }
+
    private ArrayList<OpenSocket> getUsers(String userString) {
 
       String[] users = userString.trim().split(",");
@@ -322,17 +593,115 @@ public class ChatServer extends Thread {
 
       ArrayList<OpenSocket> userList = new ArrayList<OpenSocket>();
       for(String s : users) {
-         for(OpenSocket soc : allConnections) {
-            if(soc.userName.equals(s)) {
-               userList.add(soc);
-               break;
-            }
+         OpenSocket soc = getUser(s);
+         if(soc != null) {
+            userList.add(soc);
          }
       }
       return userList;
 
    }
 
+   /**
+    * Find the connected user with the given username
+    * @param  String     name username to look up
+    * @return OpenSocket      the connection of that user. Null if no such user is connected.
+    */
+   private OpenSocket getUser(String name) {
+      synchronized (usersByName) {
+         return usersByName.get(name);
+      }
+   }
+
+   /**
+    * Queue a presence change of the given user for every client subscribed to that user.
+    * Changes are not sent right away: they are coalesced and sent by flushPresence(), which reads
+    * the state of the user at that time, so a late call can never overwrite a newer state.
+    * @param String name username whose presence changed
+    */
+   private void publishPresence(String name) {
+      synchronized (presenceSubscribers) {
+         HashSet<OpenSocket> subscribers = presenceSubscribers.get(name);
+         if(subscribers == null) {
+            return;
+         }
+         for(OpenSocket soc : subscribers) {
+            if(soc.presenceUpdates == null) {
+               soc.presenceUpdates = new LinkedHashSet<String>();
+            }
+            soc.presenceUpdates.add(name);
+            pendingPresence.add(soc);
+         }
+      }
+   }
+
+   /**
+    * Send one PRS message to every client that has queued presence changes.
+    * Called periodically by the presence timer. The writes are done by presenceWriters, never by the timer thread.
+    * A client still busy receiving its previous PRS keeps its changes queued (and coalesced) for a later batch.
+    * Every client whose PRS write has been running for longer than PRESENCE_WRITE_TIMEOUT is dropped,
+    * whether or not it has new changes queued. Time spent waiting for a free writer thread is not counted.
+    */
+   private void flushPresence() {
+      ArrayList<OpenSocket> targets = new ArrayList<OpenSocket>();
+      ArrayList<String> messages = new ArrayList<String>();
+      ArrayList<OpenSocket> slow = new ArrayList<OpenSocket>();
+      long now = System.currentTimeMillis();
+      synchronized (presenceSubscribers) {
+         for(OpenSocket soc : presenceInFlight) {
+            if(soc.presenceSendStart != 0 && now - soc.presenceSendStart > PRESENCE_WRITE_TIMEOUT) {
+               soc.presenceSendStart = 0; //dropped once, stays in flight until the write gives up
+               slow.add(soc);
+            }
+         }
+
+         Iterator<OpenSocket> it = pendingPresence.iterator();
+         while(it.hasNext()) {
+            OpenSocket soc = it.next();
+            if(presenceInFlight.contains(soc)) { //previous PRS not written yet
+               continue;
+            }
+            it.remove();
+            if(soc.presenceUpdates == null) { //every change was unsubscribed from
+               continue;
+            }
+            StringBuilder sb = new StringBuilder("PRS");
+            for(String name : soc.presenceUpdates) {
+               if(sb.length() > 3) {
+                  sb.append('\3');
+               }
+               sb.append(getUser(name) != null ? '+' : '-'); //current state, not the one at publish time
+               sb.append(name);
+            }
+            sb.append('\0');
+            soc.presenceUpdates = null;
+            presenceInFlight.add(soc);
+            targets.add(soc);
+            messages.add(sb.toString());
+         }
+      }
+
+      for(OpenSocket soc : slow) {
+         soc.drop('"' + soc.userName + "\" was dropped for not receiving presence updates");
+      }
+      for(int i = 0; i < targets.size(); i++) {
+         final OpenSocket soc = targets.get(i);
+         final String message = messages.get(i);
+         presenceWriters.execute(new Runnable() {
+            public void run() {
+               synchronized (presenceSubscribers) {
+                  soc.presenceSendStart = System.currentTimeMillis();
+               }
+               soc.sendMessageToSelf(message);
+               synchronized (presenceSubscribers) {
+                  soc.presenceSendStart = 0;
+                  presenceInFlight.remove(soc);
+               }
+            }
+         });
+      }
+   }
+
    /**
     *    ADMIN [USER_NAME] [(y)es|(n)o]  -  Makes the specified user(s) admins, so that they can access the command list
     *    PSWD [PASSWORD]                 -  Sets the password to server. Omiting text after PSWD will remove a pre-exiting password. Only new users will need to authenticate.
@@ -342,14 +711,14 @@ public class ChatServer extends Thread {
     *    QUIT (MESSAGE)                  -  Closes the server program. If specified, the optional (MESSAGE) is sent to all users.
     */
    public void run() {
-      Scanner scan = new Scanner(System.in);
+      Scanner scan = new Scanner(consoleIn);
       String command;
       while(true) {
          try {
             command = scan.nextLine();
          } catch(Exception e) {
             //error in scan is probably due to program exiting. Quit gracefully...
-            System.out.println("Closing keyboard input...");
+            console.println("Closing keyboard input...");
             return;
          }
          if(command.equals("\\")) { //toggles the output pause
@@ -358,15 +727,29 @@ public class ChatServer extends Thread {
             print("Sever console: " + command);
             String output = processCommand(command);
             if(output == null) {
-               System.out.println("Bad input / error parsing input");
+               console.println("Bad input / error parsing input");
             } else if(output.length() > 0){
-               System.out.println(output);
+               console.println(output);
             }
          }
       }
    }
 
 
+   /**
+    * Copy the message into a buffer borrowed from the pool, ready to be written.
+    * The buffer must be released once written.
+    * @param  String     message the message
+    * @return ByteBuffer         buffer holding the encoded message
+    */
+   private ByteBuffer encode(String message) {
+      byte[] bytes = message.getBytes();
+      ByteBuffer data = bufferPool.borrow(bytes.length);
+      data.put(bytes);
+      data.flip();
+      return data;
+   }
+
    /**
     * Pauses the output of the console to allow for typing into the console without
     * having output. Saves all the output, and will print all output to console once
@@ -378,7 +761,7 @@ public class ChatServer extends Thread {
 
       outputPaused = flag;
       if(!flag) { //if unpaused, print saved output.
-         System.out.print(consoleSave.toString());
+         console.print(consoleSave.toString());
          consoleSave.setLength(0);
       }
    }
@@ -388,6 +771,8 @@ public class ChatServer extends Thread {
     * @param String text [description]
     */
    private void print(String text) {
+      ServerEvents.LogAppend event = new ServerEvents.LogAppend();
+      event.begin();
       if(logFile != null) {
          logFile.println(text);
       }
@@ -397,8 +782,9 @@ public class ChatServer extends Thread {
          consoleSave.append(text);
          consoleSave.append('\n');
       } else {
-         System.out.println(text);
+         console.println(text);
       }
+      commitLogEvent(event, text, false);
    }
 
    /**
@@ -406,6 +792,8 @@ public class ChatServer extends Thread {
     * @param String text [description]
     */
    private void printE(String text) {
+      ServerEvents.LogAppend event = new ServerEvents.LogAppend();
+      event.begin();
       if(logFile != null) {
          logFile.println("Error: " + text);
       }
@@ -416,8 +804,31 @@ public class ChatServer extends Thread {
          consoleSave.append(text);
          consoleSave.append('\n');
       } else {
-         System.out.println("Error: " + text);
+         console.println("Error: " + text);
+      }
+      commitLogEvent(event, text, true);
+   }
+
+   /**
+    * Fill in and record a LogAppend event, attributed to the connection of the calling thread if any
+    * @param ServerEvents.LogAppend event the event started before the output
+    * @param String                 text  text that was output
+    * @param boolean                error true if output by printE
+    */
+   private void commitLogEvent(ServerEvents.LogAppend event, String text, boolean error) {
+      if(!event.shouldCommit()) {
+         return;
+      }
+      Thread current = Thread.currentThread();
+      if(current instanceof OpenSocket) {
+         event.connectionId = ((OpenSocket)current).connectionId;
+         event.userName = ((OpenSocket)current).userName;
+      } else {
+         event.connectionId = -1;
       }
+      event.error = error;
+      event.length = text.length();
+      event.commit();
    }
 
 
@@ -431,51 +842,59 @@ public class ChatServer extends Thread {
     */
    private class OpenSocket extends Thread {
 
-      private PrintStream out;
-      private BufferedReader in;
-      private byte[] buf;
-      private int bufSize;
-      private int bufItems;
+      private ByteBuffer buf; //borrowed from bufferPool while a message is being received, null otherwise
+      private String frame; //last message read, null if none
+      private final Object writeLock = new Object();
       private boolean willDisconnect;
+      //created on first use and dropped once empty, most clients never subscribe. Guarded by presenceSubscribers
+      private HashSet<String> subscriptions; //usernames this client follows, null if none
+      private LinkedHashSet<String> presenceUpdates; //usernames whose presence changed since the last PRS, null if none
+      private long presenceSendStart; //time the write of the PRS started, 0 if none is being written. Guarded by presenceSubscribers
 
-      public Socket thisSocket;
+      public final long connectionId;
+      public Transport.Connection connection;
       public String userName;
       public boolean isAdmin;
 
 
-      public OpenSocket(Socket socket) {
+      public OpenSocket(Transport.Connection connection) {
          super();
-         thisSocket = socket;
-         try {
-            out = new PrintStream(new BufferedOutputStream(thisSocket.getOutputStream()));
-            in = new BufferedReader(new InputStreamReader(thisSocket.getInputStream()));
-         } catch(IOException e) {
-            System.out.println(e.toString());
-         }
+         connectionId = nextConnectionId.getAndIncrement();
+         this.setName("connection-" + connectionId);
+         this.connection = connection;
 
-         bufSize = 1024;
-         bufItems = 0;
-         buf = new byte[bufSize];
+         buf = null;
+         frame = null;
          isAdmin = false;
          willDisconnect = false;
+         subscriptions = null;
+         presenceUpdates = null;
+         presenceSendStart = 0;
 
+         synchronized (openSockets) {
+            openSockets.add(this);
+         }
          this.start(); //begin the thread
       }
 
 
       public void handleMessage() {
 
-         if(bufItems <= 3) { //client has sent a bad command
-            out.print("ERCBad command sent\0");
-            out.flush();
+         if(frame.length() < 3) { //client has sent a bad command
+            sendMessageToSelf("ERCBad command sent\0");
             return;
          }
 
-         String msg = new String(buf, 0, 3);
-         String content = new String(buf, 3, bufItems-4);
+         String msg = frame.substring(0, 3);
+         String content = frame.substring(3);
 
          if(msg.equals("NCR")) { //new connection request
 
+            if(userName != null) { //client is already connected under a username
+               sendMessageToSelf("ERCAlready connected\0");
+               return;
+            }
+
             int separator = content.indexOf('\3');
             String pass = null;
             if(separator != -1) {
@@ -485,8 +904,7 @@ public class ChatServer extends Thread {
 
             if(!password.isEmpty()) { //if server password is set
                if(!password.equals(pass)) {
-                  out.print("NCNIncorrect password\0");
-                  out.flush();
+                  sendMessageToSelf("NCNIncorrect password\0");
                   willDisconnect = true;
                   closeSocket();
                   return;
@@ -494,36 +912,88 @@ public class ChatServer extends Thread {
             }
 
             if(!content.matches("\\w{1,10}")) { //check username format
-               out.print("NCNClient sent bad username\0");
-               out.flush();
+               sendMessageToSelf("NCNClient sent bad username\0");
                willDisconnect = true;
                closeSocket();
                return;
             }
 
-            for(OpenSocket soc : allConnections) { //check that username is available
-               if(soc.userName.equals(content)) {
-                  out.print("NCNUsername has already been taken\0");
-                  out.flush();
-                  willDisconnect = true;
-                  closeSocket();
-                  return;
+            boolean taken;
+            synchronized (usersByName) { //check that username is available, and reserve it
+               taken = usersByName.containsKey(content);
+               if(!taken) {
+                  usersByName.put(content, this);
                }
             }
+            if(taken) {
+               sendMessageToSelf("NCNUsername has already been taken\0");
+               willDisconnect = true;
+               closeSocket();
+               return;
+            }
 
             userName = content; //read username
-            out.print("CON\0"); //indicate successful connection to the user
-            out.flush();
+            sendMessageToSelf("CON\0"); //indicate successful connection to the user
 
-            print("New connection from " + thisSocket.getInetAddress().toString() + " : " + userName);
-            sendMessageToOthers("NOTThe user \"" + userName + "\" has connected to the server\0");
+            print("New connection from " + "/" + connection.getAddress() + " : " + userName);
 
             allConnections.add(this); //now that user is connected, add to allConnections
+            publishPresence(userName);
 
          } else if(msg.equals("SND")) { //new message sent
 
             sendMessageToOthers("MSG" + userName + '\3' + content + '\0');
             print(userName + ": " + content);
+            messageIndex.add(userName, content);
+
+         } else if(msg.equals("PRV")) { //private message to a single user
+
+            int separator = content.indexOf('\3');
+            if(userName == null || separator == -1) {
+               sendMessageToSelf("ERCBad private message\0");
+               return;
+            }
+            String target = content.substring(0, separator);
+            String message = content.substring(separator+1);
+            OpenSocket soc = getUser(target);
+            if(soc == null) {
+               sendMessageToSelf("ERCThe user \"" + target + "\" is not connected\0");
+               return;
+            }
+            soc.sendMessageToSelf("PRV" + userName + '\3' + message + '\0');
+            print(userName + " to " + target + ": " + message);
+
+         } else if(msg.equals("SRC")) { //search previous messages
+
+            if(userName == null) {
+               sendMessageToSelf("ERCNot connected\0");
+               return;
+            }
+            StringBuilder sb = new StringBuilder("SRR");
+            for(MessageIndex.Entry entry : messageIndex.search(content, SEARCH_RESULT_LIMIT)) {
+               if(sb.length() > 3) {
+                  sb.append('\4');
+               }
+               //separator characters in the message would split it into bogus results, replace them
+               String text = entry.text.replace('\3', ' ').replace('\4', ' ');
+               sb.append(entry.time).append('\3').append(entry.userName).append('\3').append(text);
+            }
+            sb.append('\0');
+            sendMessageToSelf(sb.toString());
+
+         } else if(msg.equals("SUB") || msg.equals("USB")) { //follow or unfollow the presence of users
+
+            if(userName == null || !content.matches("\\w{1,10}(,\\w{1,10})*")) {
+               sendMessageToSelf("ERCBad subscription list\0");
+               return;
+            }
+            if(msg.equals("SUB")) {
+               if(!subscribe(content.split(","))) {
+                  sendMessageToSelf("ERCCannot follow more than " + MAX_SUBSCRIPTIONS + " users\0");
+               }
+            } else {
+               unsubscribe(content.split(","));
+            }
 
 
          } else if(msg.equals("DSC")) { //client indicates disconnection
@@ -536,14 +1006,13 @@ public class ChatServer extends Thread {
                print("From client " + this.userName + ": " + content);
                String output = processCommand(content);
                if(output == null) {
-                  out.print("ERCBad command input\0");
+                  sendMessageToSelf("ERCBad command input\0");
                } else if(output.length() > 0){
-                  out.print("RSP" + output + '\0');
+                  sendMessageToSelf("RSP" + output + '\0');
                }
             } else {
-               out.print("ERCYou do not have admin permissions\0");
+               sendMessageToSelf("ERCYou do not have admin permissions\0");
             }
-            out.flush();
 
          } else if(msg.equals("ERS")) { //client had an error with the server command
             printE("Client encountered error\n" + content);
@@ -557,11 +1026,103 @@ public class ChatServer extends Thread {
        * @param String message the message
        */
       public void sendMessageToSelf(String message) {
+         ByteBuffer data = encode(message);
          try {
-            this.out.print(message);
-            this.out.flush();
+            write(data);
          } catch(Exception e) {
-            e.printStackTrace();
+            if(!connection.isClosed() && !connection.isOutputShutdown()) { //otherwise the server is closing it, not an error
+               e.printStackTrace();
+            }
+         } finally {
+            bufferPool.release(data);
+         }
+      }
+
+      /**
+       * Write all the remaining bytes of the buffer to this socket.
+       * Writes from different threads do not interleave.
+       * @param ByteBuffer data bytes to write
+       */
+      private void write(ByteBuffer data) throws IOException {
+         ServerEvents.RecipientWrite event = new ServerEvents.RecipientWrite();
+         event.begin();
+         int size = data.remaining();
+         synchronized (writeLock) {
+            while(data.hasRemaining()) {
+               connection.write(data);
+            }
+         }
+         if(event.shouldCommit()) {
+            event.connectionId = connectionId;
+            event.userName = userName;
+            event.size = size;
+            event.commit();
+         }
+      }
+
+      /**
+       * Start following the presence of the given users. Their current state is
+       * queued so that the client learns about it in the next presence batch.
+       * Nothing is changed if the client would follow more than MAX_SUBSCRIPTIONS users.
+       * @param  String[] names usernames to follow
+       * @return boolean        false if the limit was reached
+       */
+      private boolean subscribe(String[] names) {
+         synchronized (presenceSubscribers) {
+            if(subscriptions == null) {
+               subscriptions = new HashSet<String>();
+            }
+            if(presenceUpdates == null) {
+               presenceUpdates = new LinkedHashSet<String>();
+            }
+            HashSet<String> added = new HashSet<String>(Arrays.asList(names));
+            added.removeAll(subscriptions);
+            if(subscriptions.size() + added.size() > MAX_SUBSCRIPTIONS) {
+               return false;
+            }
+            for(String name : added) {
+               HashSet<OpenSocket> subscribers = presenceSubscribers.get(name);
+               if(subscribers == null) {
+                  subscribers = new HashSet<OpenSocket>();
+                  presenceSubscribers.put(name, subscribers);
+               }
+               subscribers.add(this);
+               subscriptions.add(name);
+               presenceUpdates.add(name);
+            }
+            pendingPresence.add(this);
+         }
+         return true;
+      }
+
+      /**
+       * Stop following the presence of the given users
+       * @param String[] names usernames to stop following
+       */
+      private void unsubscribe(String[] names) {
+         synchronized (presenceSubscribers) {
+            if(subscriptions == null) {
+               return;
+            }
+            for(String name : names) {
+               HashSet<OpenSocket> subscribers = presenceSubscribers.get(name);
+               if(subscribers != null) {
+                  subscribers.remove(this);
+                  if(subscribers.isEmpty()) {
+                     presenceSubscribers.remove(name);
+                  }
+               }
+               subscriptions.remove(name);
+               if(presenceUpdates != null) {
+                  presenceUpdates.remove(name);
+               }
+            }
+            if(subscriptions.isEmpty()) {
+               subscriptions = null;
+            }
+            if(presenceUpdates != null && presenceUpdates.isEmpty()) {
+               presenceUpdates = null;
+            }
          }
       }
 
@@ -570,52 +1131,90 @@ public class ChatServer extends Thread {
        * @param String message message to send
        */
       public void sendMessageToOthers(String message) {
+         ByteBuffer data = encode(message); //encoded once, shared by all recipients
          try {
             for(OpenSocket soc : allConnections) {
                if(soc.equals(this)) continue; //dont send back the message to socket that sent message
-               soc.out.print(message);
-               soc.out.flush();
+               try {
+                  soc.write(data.duplicate());
+               } catch(Exception e) {
+                  if(!soc.connection.isClosed() && !soc.connection.isOutputShutdown()) { //otherwise the server is closing it, not an error
+                     e.printStackTrace();
+                  }
+               }
             }
          } catch(Exception e) {
             e.printStackTrace();
+         } finally {
+            bufferPool.release(data);
          }
       }
 
       /**
-       * Read the next available message.
-       * Remember to reset the buffer size at the end to delete previously read message
-       * TODO: consider changing to a StringBuilder...
+       * Read the next available message into frame.
+       * No buffer is held while waiting for the client to start sending. Bytes received after the
+       * end of the message are kept in buf (still borrowed) for the next call, moved to the smallest
+       * buffer if they fit in it, so a large message does not leave its buffer behind.
        */
       public void readMessage() {
-         int character;
+         ServerEvents.FrameReceived event = new ServerEvents.FrameReceived();
          try {
-            while( (character = in.read()) > 0) { //block on read until some text becomes available
-               if(bufItems >= bufSize) {
-                  bufSize *= 2;
-                  byte[] newBuf = new byte[bufSize];
-                  for(int i = 0; i < buf.length; i++) {
-                     newBuf[i] = buf[i];
-                  }
-                  buf = newBuf;
+            if(buf == null) {
+               int first = connection.read(); //block on read until some text becomes available
+               if(first == -1) {
+                  endOfStream();
+                  return;
                }
-               buf[bufItems] = (byte)character;
-               bufItems++;
+               event.begin(); //do not count the time the client was idle
+               buf = bufferPool.borrow(BufferPool.MIN_SIZE);
+               buf.put((byte)first);
+            } else {
+               event.begin();
             }
 
-            if(character == -1) { //in.read() has been shut down, close socket.
-               synchronized (this) {
-                  try {
-                     if(willDisconnect && !(thisSocket.isInputShutdown() && thisSocket.isOutputShutdown()) )
-                        this.wait(); //if disconnect is intentional, wait for disconnect method to complete
-                  } catch (Exception e) {
-                     e.printStackTrace();
-                  }
+            int scanned = 0;
+            int end;
+            while((end = indexOfTerminator(scanned)) == -1) {
+               scanned = buf.position();
+               if(!buf.hasRemaining()) { //move to a bigger buffer
+                  ByteBuffer bigger = bufferPool.borrow(buf.capacity() * 2);
+                  buf.flip();
+                  bigger.put(buf);
+                  bufferPool.release(buf);
+                  buf = bigger;
+               }
+               if(connection.read(buf) == -1) { //input has been shut down, close socket.
+                  endOfStream();
+                  return;
                }
-               closeSocket();
-               return;
             }
 
-            buf[bufItems++] = '\0'; //set terminator
+            ByteBuffer message = buf.duplicate();
+            message.position(0);
+            message.limit(end);
+            frame = Charset.defaultCharset().decode(message).toString();
+            if(event.shouldCommit()) { //only build the fields when recording
+               event.connectionId = connectionId;
+               event.userName = userName;
+               event.code = frame.substring(0, Math.min(3, frame.length()));
+               event.size = end;
+               event.commit();
+            }
+
+            //keep whatever follows the terminator, give back the buffer if nothing does
+            buf.flip();
+            buf.position(end + 1);
+            buf.compact();
+            if(buf.position() == 0) {
+               bufferPool.release(buf);
+               buf = null;
+            } else if(buf.capacity() > BufferPool.MIN_SIZE && buf.position() <= BufferPool.MIN_SIZE) {
+               ByteBuffer small = bufferPool.borrow(BufferPool.MIN_SIZE); //do not keep a grown buffer for a few bytes
+               buf.flip();
+               small.put(buf);
+               bufferPool.release(buf);
+               buf = small;
+            }
 
          } catch(Exception e) {
             e.printStackTrace();
@@ -623,25 +1222,77 @@ public class ChatServer extends Thread {
          }
       }
 
+      /**
+       * Position of the first '\0' in buf, searching from the given index up to buf's position
+       * @param  int from index to start searching from
+       * @return int      index of the terminator, -1 if the message is not complete yet
+       */
+      private int indexOfTerminator(int from) {
+         for(int i = from; i < buf.position(); i++) {
+            if(buf.get(i) == 0) {
+               return i;
+            }
+         }
+         return -1;
+      }
+
+      /**
+       * The client will not send anything else, close the socket.
+       */
+      private void endOfStream() {
+         synchronized (this) {
+            try {
+               if(willDisconnect && !(connection.isInputShutdown() && connection.isOutputShutdown()) )
+                  this.wait(); //if disconnect is intentional, wait for disconnect method to complete
+            } catch (Exception e) {
+               e.printStackTrace();
+            }
+         }
+         closeSocket();
+      }
+
       /**
        * Public method to indicate that this connection will terminate.
        * The idea is that this method is /guaranteed/ to complete before
        * closeSocket() is invoked.
-       * @param String msgToOthers [description]
-       * @param String msgToSelf   [description]
+       * Other users are not told directly; subscribers receive a presence update once the socket closes.
+       * @param String msgToLog  message printed to the server output. Ignored if empty.
+       * @param String msgToSelf message sent to this client with the DSC
        */
-      public void disconnect(String msgToOthers, String msgToSelf) {
+      public void disconnect(String msgToLog, String msgToSelf) {
          willDisconnect = true;
-         if(!msgToOthers.isEmpty()) {
-            sendMessageToOthers("NOT" + msgToOthers + '\0');
-            print(msgToOthers);
+         if(!msgToLog.isEmpty()) {
+            print(msgToLog);
          }
          sendMessageToSelf("DSC" + msgToSelf + '\0');
+         shutdownConnection();
+      }
+
+      /**
+       * Disconnect a client that is not responding, without sending it a DSC (which could block as well).
+       * Shutting down the output also interrupts a write in progress to this client.
+       * @param String msgToLog message printed to the server output
+       */
+      public void drop(String msgToLog) {
+         willDisconnect = true;
+         printE(msgToLog);
+         shutdownConnection();
+      }
+
+      /**
+       * Shut down both directions of the connection, and let readMessage() close the socket.
+       * Does nothing to a connection that is already closed.
+       */
+      private void shutdownConnection() {
          try {
-            thisSocket.shutdownInput();
-            thisSocket.shutdownOutput();
+            if(!connection.isClosed()) {
+               connection.shutdownInput();
+               connection.shutdownOutput();
+            }
          } catch (Exception ex) {
-            ex.printStackTrace();
+            if(!connection.isClosed()) { //closed in the meantime by its own thread
+               ex.printStackTrace();
+            }
          }
          synchronized (this) {
             this.notifyAll(); //alert that task is complete
@@ -654,24 +1305,54 @@ public class ChatServer extends Thread {
       private void closeSocket() {
          if(!willDisconnect) { //is this an unexpected disconnection? if so print a message
             printE('"' + userName + "\" has lost connection to the server");
-            sendMessageToOthers("NOT\"" + userName + "\" has lost connection to the server\0");
          }
          try {
-            thisSocket.close();
+            connection.close();
             allConnections.remove(this);
          } catch (Exception ex) {
             ex.printStackTrace();
          }
+         if(buf != null) {
+            bufferPool.release(buf);
+            buf = null;
+         }
+         synchronized (openSockets) {
+            openSockets.remove(this);
+         }
+
+         boolean registered;
+         synchronized (usersByName) {
+            registered = userName != null && usersByName.remove(userName, this);
+         }
+         synchronized (presenceSubscribers) { //drop this client's subscriptions
+            if(subscriptions != null) {
+               unsubscribe(subscriptions.toArray(new String[0]));
+            }
+            pendingPresence.remove(this);
+            presenceInFlight.remove(this);
+         }
+         if(registered) {
+            publishPresence(userName);
+         }
       }
 
       public void run() {
-         while(!thisSocket.isClosed()) {
+         while(!connection.isClosed()) {
             //read the message
             readMessage();
             //handle the new message
-            handleMessage();
-            //reset buf size
-            bufItems = 0;
+            if(frame != null) {
+               ServerEvents.Dispatch event = new ServerEvents.Dispatch();
+               event.begin();
+               handleMessage();
+               if(event.shouldCommit()) {
+                  event.connectionId = connectionId;
+                  event.userName = userName;
+                  event.code = frame.substring(0, Math.min(3, frame.length()));
+                  event.commit();
+               }
+               frame = null;
+            }
          }
       }
 
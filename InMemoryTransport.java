@@ -0,0 +1,260 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Transport connecting clients running in the same JVM as the server.
+ *
+ * Each call to connect() creates a pair of connected endpoints: the client keeps one, and the
+ * other is handed to the server by accept(). Bytes go through in-memory pipes with the same
+ * blocking and shutdown behavior as a socket, so the server runs exactly the same code as with
+ * SocketTransport. Like a socket buffer, a pipe holds at most PIPE_CAPACITY bytes: a write to a
+ * client that does not read blocks until the client reads, or until the connection is shut down.
+ */
+public class InMemoryTransport implements Transport {
+
+   public static final int PIPE_CAPACITY = 64 * 1024; //bytes waiting to be read before writes block
+
+   private ArrayDeque<Connection> pending; //server endpoints waiting to be accepted
+   private boolean closed;
+   private int nextClient;
+
+   public InMemoryTransport() {
+      pending = new ArrayDeque<Connection>();
+      closed = false;
+      nextClient = 0;
+   }
+
+   /**
+    * Open a new connection to the server
+    * @return Connection the client endpoint of the connection
+    */
+   public synchronized Connection connect() throws IOException {
+      if(closed) {
+         throw new IOException("Transport closed");
+      }
+      Pipe toServer = new Pipe();
+      Pipe toClient = new Pipe();
+      String address = "memory:" + nextClient++;
+      pending.add(new Endpoint(toServer, toClient, address));
+      notifyAll();
+      return new Endpoint(toClient, toServer, "server");
+   }
+
+   public synchronized Connection accept() throws IOException {
+      try {
+         while(pending.isEmpty() && !closed) {
+            wait();
+         }
+      } catch(InterruptedException e) {
+         throw new InterruptedIOException();
+      }
+      if(closed) {
+         throw new IOException("Transport closed");
+      }
+      return pending.poll();
+   }
+
+   public synchronized void close() {
+      closed = true;
+      notifyAll();
+   }
+
+   /**
+    * One direction of a connection. The buffer starts small and grows up to PIPE_CAPACITY.
+    */
+   private static class Pipe {
+
+      private byte[] data;
+      private int start;
+      private int end;
+      private boolean writerDone; //nothing else will be written, readers get -1 once data is consumed
+      private boolean readerDone; //nothing else will be read, written data is discarded
+
+      public Pipe() {
+         data = new byte[256];
+         start = 0;
+         end = 0;
+         writerDone = false;
+         readerDone = false;
+      }
+
+      /**
+       * Block until data is available or the pipe ends
+       * @return boolean true if data is available, false at the end of the pipe
+       */
+      private boolean await() throws IOException {
+         try {
+            while(start == end && !writerDone && !readerDone) {
+               wait();
+            }
+         } catch(InterruptedException e) {
+            throw new InterruptedIOException();
+         }
+         return !readerDone && start != end;
+      }
+
+      public synchronized int read() throws IOException {
+         if(!await()) {
+            return -1;
+         }
+         int b = data[start++] & 0xFF;
+         if(start == end) {
+            start = 0;
+            end = 0;
+         }
+         notifyAll(); //room for a blocked writer
+         return b;
+      }
+
+      public synchronized int read(ByteBuffer dst) throws IOException {
+         if(!dst.hasRemaining()) {
+            return 0;
+         }
+         if(!await()) {
+            return -1;
+         }
+         int n = Math.min(end - start, dst.remaining());
+         dst.put(data, start, n);
+         start += n;
+         if(start == end) {
+            start = 0;
+            end = 0;
+         }
+         notifyAll(); //room for a blocked writer
+         return n;
+      }
+
+      /**
+       * Write as many bytes as fit, blocking while the pipe is full
+       * @param  ByteBuffer src bytes to write
+       * @return int            number of bytes written
+       */
+      public synchronized int write(ByteBuffer src) throws IOException {
+         try {
+            while(end - start == PIPE_CAPACITY && !readerDone && !writerDone) {
+               wait();
+            }
+         } catch(InterruptedException e) {
+            throw new InterruptedIOException();
+         }
+         if(writerDone) { //shut down while waiting
+            throw new IOException("Output has been shut down");
+         }
+         int n = src.remaining();
+         if(readerDone) {
+            src.position(src.limit());
+            return n;
+         }
+         n = Math.min(n, PIPE_CAPACITY - (end - start));
+         if(end + n > data.length) {
+            byte[] newData = data;
+            if(end - start + n > data.length) {
+               newData = new byte[Math.min(PIPE_CAPACITY, Math.max(data.length * 2, end - start + n))];
+            }
+            System.arraycopy(data, start, newData, 0, end - start);
+            data = newData;
+            end -= start;
+            start = 0;
+         }
+         src.get(data, end, n);
+         end += n;
+         notifyAll();
+         return n;
+      }
+
+      public synchronized void closeWriter() {
+         writerDone = true;
+         notifyAll();
+      }
+
+      public synchronized void closeReader() {
+         readerDone = true;
+         start = 0;
+         end = 0;
+         data = new byte[0];
+         notifyAll();
+      }
+   }
+
+   /**
+    * One end of a connection: reads from one pipe and writes to the other
+    */
+   private static class Endpoint implements Connection {
+
+      private Pipe in;
+      private Pipe out;
+      private String address;
+      private volatile boolean inputShutdown;
+      private volatile boolean outputShutdown;
+      private volatile boolean closed;
+
+      public Endpoint(Pipe in, Pipe out, String address) {
+         this.in = in;
+         this.out = out;
+         this.address = address;
+         inputShutdown = false;
+         outputShutdown = false;
+         closed = false;
+      }
+
+      public int read() throws IOException {
+         checkOpen();
+         return inputShutdown ? -1 : in.read();
+      }
+
+      public int read(ByteBuffer dst) throws IOException {
+         checkOpen();
+         return inputShutdown ? -1 : in.read(dst);
+      }
+
+      public int write(ByteBuffer src) throws IOException {
+         checkOpen();
+         if(outputShutdown) {
+            throw new IOException("Output has been shut down");
+         }
+         return out.write(src);
+      }
+
+      public void shutdownInput() throws IOException {
+         checkOpen();
+         inputShutdown = true;
+         in.closeReader();
+      }
+
+      public void shutdownOutput() throws IOException {
+         checkOpen();
+         outputShutdown = true;
+         out.closeWriter();
+      }
+
+      public void close() {
+         closed = true;
+         in.closeReader();
+         out.closeWriter();
+      }
+
+      public boolean isClosed() {
+         return closed;
+      }
+
+      public boolean isInputShutdown() {
+         return inputShutdown;
+      }
+
+      public boolean isOutputShutdown() {
+         return outputShutdown;
+      }
+
+      public String getAddress() {
+         return address;
+      }
+
+      private void checkOpen() throws IOException {
+         if(closed) {
+            throw new IOException("Connection closed");
+         }
+      }
+   }
+}
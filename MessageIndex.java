@@ -0,0 +1,336 @@
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory inverted index over the chat messages sent to the server.
+ *
+ * Messages are handed over with add() and indexed on this thread, so the thread handling
+ * the message never waits on the index. Each message gets an increasing id; every word maps
+ * to the sorted list of ids of the messages that contain it. A query is the intersection of
+ * the lists of its words.
+ *
+ * Memory is bounded: messages are truncated to MAX_TEXT_LENGTH characters, at most maxMessages
+ * messages are kept, and messages older than maxAge are dropped. The estimated size of the kept
+ * messages, of the word table and of the id lists stays under maxBytes: the oldest messages are
+ * evicted until it does, so a flood of distinct words cannot grow the index without limit. The ring
+ * buffer (one reference per message slot) is allocated upfront and not part of maxBytes.
+ * Since messages are evicted in id order, an evicted message is always at the head of the lists
+ * of its words, so eviction never has to search.
+ */
+public class MessageIndex extends Thread {
+
+   public static final int DEFAULT_MAX_MESSAGES = 2000000;
+   public static final long DEFAULT_MAX_AGE = 24 * 60 * 60 * 1000L; //one day, in milliseconds
+   public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024; //estimated heap used by messages, words and id lists
+   public static final int MAX_TEXT_LENGTH = 512; //longer messages are only stored and searchable up to this length
+
+   private static final int QUEUE_CAPACITY = 16384; //messages waiting to be indexed before new ones get dropped
+   private static final int MAX_WORD_LENGTH = 32;
+
+   //estimated heap cost, in bytes, of what the index keeps (object headers, references, hash table slot)
+   private static final int ENTRY_BYTES = 64; //Entry and its String, plus 2 bytes per character of text
+   private static final int WORD_BYTES = 128; //HashMap node, the word String and its Postings, plus 2 bytes per character
+   private static final int POSTING_BYTES = 8; //one slot of a Postings array, used or not
+
+   private final int maxMessages;
+   private final long maxAge;
+   private final long maxBytes;
+
+   private final Entry[] messages; //ring buffer, message with id i is at i % messages.length
+   private long firstId; //id of the oldest message still indexed
+   private long nextId; //id given to the next message
+   private long usedBytes; //estimated heap used by the indexed messages, the words and the id lists
+   private final HashMap<String, Postings> words;
+   private final ReentrantReadWriteLock lock;
+
+   private final LinkedBlockingQueue<Entry> pending;
+   private long dropped;
+
+   /**
+    * A single indexed message
+    */
+   public static class Entry {
+      public final long time;
+      public final String userName;
+      public final String text;
+
+      private Entry(long time, String userName, String text) {
+         this.time = time;
+         this.userName = userName;
+         this.text = text;
+      }
+   }
+
+   public MessageIndex() {
+      this(DEFAULT_MAX_MESSAGES, DEFAULT_MAX_AGE, DEFAULT_MAX_BYTES);
+   }
+
+   public MessageIndex(int maxMessages, long maxAge, long maxBytes) {
+      super("message-index");
+      this.maxMessages = maxMessages;
+      this.maxAge = maxAge;
+      this.maxBytes = maxBytes;
+      messages = new Entry[maxMessages];
+      firstId = 0;
+      nextId = 0;
+      usedBytes = 0;
+      words = new HashMap<String, Postings>();
+      lock = new ReentrantReadWriteLock();
+      pending = new LinkedBlockingQueue<Entry>(QUEUE_CAPACITY);
+      dropped = 0;
+
+      this.setDaemon(true);
+      this.start();
+   }
+
+   /**
+    * Queue a message to be indexed. Never blocks: if the indexer is too far behind the message is not indexed.
+    * Only the first MAX_TEXT_LENGTH characters of the message are kept.
+    * @param String userName sender of the message
+    * @param String text     content of the message
+    */
+   public void add(String userName, String text) {
+      if(text.length() > MAX_TEXT_LENGTH) {
+         text = text.substring(0, MAX_TEXT_LENGTH); //copy, so the full message is not kept alive
+      }
+      if(!pending.offer(new Entry(System.currentTimeMillis(), userName, text))) {
+         synchronized (this) {
+            dropped++;
+         }
+      }
+   }
+
+   /**
+    * Find the most recent messages containing every word of the query (case insensitive)
+    * @param  String      query words to look for
+    * @param  int         limit maximum number of results
+    * @return List<Entry>       matching messages, newest first. Empty if the query has no words or nothing matched.
+    */
+   public List<Entry> search(String query, int limit) {
+      ArrayList<Entry> results = new ArrayList<Entry>();
+      Set<String> queryWords = tokenize(query);
+      if(queryWords.isEmpty()) {
+         return results;
+      }
+
+      lock.readLock().lock();
+      try {
+         ArrayList<Postings> lists = new ArrayList<Postings>();
+         for(String word : queryWords) {
+            Postings p = words.get(word);
+            if(p == null) {
+               return results; //a word is in no message, so nothing can match
+            }
+            lists.add(p);
+         }
+         lists.sort(new Comparator<Postings>() {
+            public int compare(Postings a, Postings b) {
+               return Integer.compare(a.size(), b.size());
+            }
+         });
+
+         //walk the shortest list from newest to oldest, checking the others
+         Postings shortest = lists.get(0);
+         for(int i = shortest.tail - 1; i >= shortest.head && results.size() < limit; i--) {
+            long id = shortest.ids[i];
+            boolean match = true;
+            for(int j = 1; j < lists.size() && match; j++) {
+               match = lists.get(j).contains(id);
+            }
+            if(match) {
+               results.add(messages[(int)(id % messages.length)]);
+            }
+         }
+      } finally {
+         lock.readLock().unlock();
+      }
+      return results;
+   }
+
+   /**
+    * Stop the indexing thread. Messages still waiting are not indexed.
+    */
+   public void close() {
+      this.interrupt();
+   }
+
+   /**
+    * Short description of the state of the index, for the server output
+    * @return String number of messages and words indexed
+    */
+   public String stats() {
+      lock.readLock().lock();
+      try {
+         synchronized (this) {
+            return (nextId - firstId) + " messages, " + words.size() + " words indexed (about " + usedBytes / 1024 + "KB), "
+               + pending.size() + " waiting, " + dropped + " dropped";
+         }
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   public void run() {
+      while(true) {
+         try {
+            Entry entry = pending.poll(1, TimeUnit.SECONDS);
+            lock.writeLock().lock();
+            try {
+               if(entry != null) {
+                  index(entry);
+               }
+               evict(System.currentTimeMillis());
+            } finally {
+               lock.writeLock().unlock();
+            }
+         } catch(InterruptedException e) {
+            return;
+         } catch(Exception e) {
+            e.printStackTrace();
+         }
+      }
+   }
+
+   /**
+    * Add the message to the ring buffer and to the list of each of its words, then evict the
+    * oldest messages until the index is back under maxBytes. The new message itself is always kept.
+    * Must hold the write lock.
+    * @param Entry entry message to index
+    */
+   private void index(Entry entry) {
+      if(firstId < nextId && nextId - firstId >= maxMessages) {
+         evictOldest(); //make room in the ring buffer
+      }
+      long id = nextId++;
+      messages[(int)(id % messages.length)] = entry;
+      usedBytes += ENTRY_BYTES + 2L * entry.text.length();
+      for(String word : tokenize(entry.text)) {
+         Postings p = words.get(word);
+         if(p == null) {
+            p = new Postings();
+            words.put(word, p);
+            usedBytes += WORD_BYTES + 2L * word.length() + (long)POSTING_BYTES * p.capacity();
+         }
+         int capacity = p.capacity();
+         p.add(id);
+         usedBytes += (long)POSTING_BYTES * (p.capacity() - capacity);
+      }
+      while(firstId < id && usedBytes > maxBytes) {
+         evictOldest();
+      }
+   }
+
+   /**
+    * Drop every message older than maxAge.
+    * Must hold the write lock.
+    * @param long now current time in milliseconds
+    */
+   private void evict(long now) {
+      while(firstId < nextId && messages[(int)(firstId % messages.length)].time < now - maxAge) {
+         evictOldest();
+      }
+   }
+
+   /**
+    * Remove the oldest message from the ring buffer and from the head of the list of each of its words.
+    * Must hold the write lock.
+    */
+   private void evictOldest() {
+      int slot = (int)(firstId % messages.length);
+      for(String word : tokenize(messages[slot].text)) {
+         Postings p = words.get(word);
+         int capacity = p.capacity();
+         p.removeHead();
+         usedBytes -= (long)POSTING_BYTES * (capacity - p.capacity());
+         if(p.size() == 0) {
+            words.remove(word);
+            usedBytes -= WORD_BYTES + 2L * word.length() + (long)POSTING_BYTES * p.capacity();
+         }
+      }
+      usedBytes -= ENTRY_BYTES + 2L * messages[slot].text.length();
+      messages[slot] = null;
+      firstId++;
+   }
+
+   /**
+    * Split the text into distinct lower case words made of letters and digits
+    * @param  String      text text to split
+    * @return Set<String>      the words of the text
+    */
+   private static Set<String> tokenize(String text) {
+      HashSet<String> result = new HashSet<String>();
+      StringBuilder word = new StringBuilder();
+      for(int i = 0; i <= text.length(); i++) {
+         char c = i < text.length() ? text.charAt(i) : ' ';
+         if(Character.isLetterOrDigit(c)) {
+            if(word.length() < MAX_WORD_LENGTH) {
+               word.append(Character.toLowerCase(c));
+            }
+         } else if(word.length() > 0) {
+            result.add(word.toString());
+            word.setLength(0);
+         }
+      }
+      return result;
+   }
+
+   //
+   // ==============================================================================================
+   //
+   /**
+    * Sorted list of message ids containing a word. Ids are only added at the tail and removed at the head.
+    */
+   private static class Postings {
+
+      private long[] ids;
+      private int head;
+      private int tail;
+
+      public Postings() {
+         ids = new long[2];
+         head = 0;
+         tail = 0;
+      }
+
+      public int size() {
+         return tail - head;
+      }
+
+      public int capacity() {
+         return ids.length;
+      }
+
+      public void add(long id) {
+         if(tail == ids.length) {
+            if(head >= ids.length / 2) { //mostly evicted, reuse the space
+               System.arraycopy(ids, head, ids, 0, tail - head);
+            } else {
+               long[] newIds = new long[ids.length * 2];
+               System.arraycopy(ids, head, newIds, 0, tail - head);
+               ids = newIds;
+            }
+            tail -= head;
+            head = 0;
+         }
+         ids[tail++] = id;
+      }
+
+      public void removeHead() {
+         head++;
+         if(size() == 0) {
+            head = 0;
+            tail = 0;
+         } else if(ids.length > 16 && size() < ids.length / 4) { //shrink lists of words that became rare
+            ids = Arrays.copyOfRange(ids, head, head + Math.max(size() * 2, 16));
+            tail -= head;
+            head = 0;
+         }
+      }
+
+      public boolean contains(long id) {
+         return Arrays.binarySearch(ids, head, tail, id) >= 0;
+      }
+   }
+}
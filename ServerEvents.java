@@ -0,0 +1,90 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder events for the stages a message goes through in the server.
+ *
+ * Events are only recorded while a recording is running (see the JFR admin command, or start the
+ * server with -XX:StartFlightRecording). Otherwise begin() and commit() do nothing, and the JIT
+ * removes the event objects, so the instrumentation can stay in production code.
+ *
+ * Every event carries the id of the connection involved and its username (empty before the client
+ * has sent NCR). Connection ids are given in order of connection and are never reused.
+ */
+public final class ServerEvents {
+
+   private ServerEvents() {
+   }
+
+   @Name("ChatServer.FrameReceived")
+   @Label("Frame Received")
+   @Category("ChatServer")
+   @Description("Reception and decoding of a message, from its first byte to its terminator")
+   public static class FrameReceived extends Event {
+      @Label("Connection Id")
+      public long connectionId;
+
+      @Label("User Name")
+      public String userName;
+
+      @Label("Code")
+      public String code;
+
+      @Label("Size")
+      @DataAmount
+      public int size;
+   }
+
+   @Name("ChatServer.Dispatch")
+   @Label("Dispatch")
+   @Category("ChatServer")
+   @Description("Handling of a received message, including admin commands and fan-out to other users")
+   public static class Dispatch extends Event {
+      @Label("Connection Id")
+      public long connectionId;
+
+      @Label("User Name")
+      public String userName;
+
+      @Label("Code")
+      public String code;
+   }
+
+   @Name("ChatServer.RecipientWrite")
+   @Label("Recipient Write")
+   @Category("ChatServer")
+   @Description("Write of a message to one connection, including the wait for other writes to that connection")
+   public static class RecipientWrite extends Event {
+      @Label("Connection Id")
+      public long connectionId;
+
+      @Label("User Name")
+      public String userName;
+
+      @Label("Size")
+      @DataAmount
+      public int size;
+   }
+
+   @Name("ChatServer.LogAppend")
+   @Label("Log Append")
+   @Category("ChatServer")
+   @Description("Output of a line to the console, GUI and log file. The connection is the one of the calling thread, -1 if none")
+   public static class LogAppend extends Event {
+      @Label("Connection Id")
+      public long connectionId;
+
+      @Label("User Name")
+      public String userName;
+
+      @Label("Error")
+      public boolean error;
+
+      @Label("Length")
+      public int length;
+   }
+}
@@ -0,0 +1,84 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Transport accepting TCP connections on a port
+ */
+public class SocketTransport implements Transport {
+
+   private ServerSocketChannel listeningPort;
+
+   public SocketTransport(int port) throws IOException {
+      listeningPort = ServerSocketChannel.open();
+      listeningPort.bind(new InetSocketAddress(port));
+   }
+
+   public Connection accept() throws IOException {
+      return new SocketConnection(listeningPort.accept());
+   }
+
+   public void close() throws IOException {
+      listeningPort.close();
+   }
+
+   /**
+    * Connection over a SocketChannel in blocking mode
+    */
+   private static class SocketConnection implements Connection {
+
+      private SocketChannel channel;
+      private Socket socket;
+      private InputStream in; //single byte reads, so no buffer is needed while waiting
+
+      public SocketConnection(SocketChannel channel) throws IOException {
+         this.channel = channel;
+         socket = channel.socket();
+         in = socket.getInputStream();
+      }
+
+      public int read() throws IOException {
+         return in.read();
+      }
+
+      public int read(ByteBuffer dst) throws IOException {
+         return channel.read(dst);
+      }
+
+      public int write(ByteBuffer src) throws IOException {
+         return channel.write(src);
+      }
+
+      public void shutdownInput() throws IOException {
+         socket.shutdownInput();
+      }
+
+      public void shutdownOutput() throws IOException {
+         socket.shutdownOutput();
+      }
+
+      public void close() throws IOException {
+         socket.close();
+      }
+
+      public boolean isClosed() {
+         return socket.isClosed();
+      }
+
+      public boolean isInputShutdown() {
+         return socket.isInputShutdown();
+      }
+
+      public boolean isOutputShutdown() {
+         return socket.isOutputShutdown();
+      }
+
+      public String getAddress() {
+         return socket.getInetAddress().getHostAddress();
+      }
+   }
+}
@@ -0,0 +1,72 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Source of client connections for the ChatServer.
+ *
+ * SocketTransport accepts real TCP connections. InMemoryTransport creates connections within the
+ * same JVM, so the server can be driven by simulated clients without any socket.
+ */
+public interface Transport {
+
+   /**
+    * Wait for the next client connection
+    * @return Connection the new connection
+    */
+   Connection accept() throws IOException;
+
+   /**
+    * Stop accepting connections. Connections already accepted are not affected.
+    */
+   void close() throws IOException;
+
+   /**
+    * A single bidirectional byte stream between the server and a client.
+    * Reads and writes block like a socket in blocking mode.
+    */
+   interface Connection {
+
+      /**
+       * Block until one byte is available
+       * @return int the byte, or -1 if the input has been shut down or the peer will not send anything else
+       */
+      int read() throws IOException;
+
+      /**
+       * Block until at least one byte is available, and read as many as fit into dst
+       * @param  ByteBuffer dst buffer to fill
+       * @return int            number of bytes read, or -1 at the end of the input
+       */
+      int read(ByteBuffer dst) throws IOException;
+
+      /**
+       * Write some of the remaining bytes of src
+       * @param  ByteBuffer src bytes to write
+       * @return int            number of bytes written
+       */
+      int write(ByteBuffer src) throws IOException;
+
+      /**
+       * Stop reading. A read in progress, and any later read, returns -1.
+       */
+      void shutdownInput() throws IOException;
+
+      /**
+       * Stop writing. The peer reads the end of the input once it has read everything written so far.
+       */
+      void shutdownOutput() throws IOException;
+
+      void close() throws IOException;
+
+      boolean isClosed();
+
+      boolean isInputShutdown();
+
+      boolean isOutputShutdown();
+
+      /**
+       * @return String address of the client, for the server output
+       */
+      String getAddress();
+   }
+}
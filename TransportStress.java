@@ -0,0 +1,465 @@
+import java.io.*;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * In-process stress check of the server, over an InMemoryTransport.
+ *
+ * Run after compiling, as part of every build:
+ * java TransportStress [number_of_clients]
+ *
+ * Thousands of simulated clients connect, follow each other's presence and chat; then a third
+ * of them are kicked, a third drop their connection without warning and the rest send DSC.
+ * Checks that every observed client receives the messages of each sender in the order they were
+ * sent, and that once everyone is gone the server holds no connection, username, subscription,
+ * I/O buffer or connection thread. The server must not print anything to System.err (stack traces)
+ * at any point, shutdowns included.
+ *
+ * A second server checks the memory of idle connections: the heap and direct memory they use, measured
+ * before and after connecting them, must stay under IDLE_BYTES_PER_CONNECTION each. Connected clients that
+ * are not sending or receiving must not hold any pooled buffer, and a message larger than 1MB must neither
+ * stay borrowed for the few bytes that follow it nor leave more spare buffers in the pool than it is allowed
+ * to keep.
+ *
+ * A third server checks a client that stops reading: writes to it must block once its pipe is full, and
+ * it must be dropped after PRESENCE_WRITE_TIMEOUT, releasing the writers blocked on it. This takes a bit
+ * more than PRESENCE_WRITE_TIMEOUT.
+ *
+ * Prints OK and exits with 0 on success; prints the failed check and exits with 1 otherwise.
+ */
+public class TransportStress {
+
+   private static final int DEFAULT_CLIENTS = 2000;
+   private static final int MESSAGES_PER_SENDER = 10;
+   private static final int SENDER_EVERY = 20; //one client out of SENDER_EVERY sends messages
+   private static final int OBSERVER_EVERY = 50; //one client out of OBSERVER_EVERY checks what it receives
+   private static final long TIMEOUT = 30000; //milliseconds to wait for any single step
+   private static final int LARGE_MESSAGE = 1536 * 1024; //bigger than the largest pooled buffer
+   private static final long IDLE_BYTES_PER_CONNECTION = 4096; //heap and direct memory of an idle connection, both ends included (about 1.6KB today)
+
+   private InMemoryTransport transport;
+   private PipedOutputStream commands;
+   private ChatServer server;
+
+   public static void main(String[] args) {
+      int clients = DEFAULT_CLIENTS;
+      if(args.length > 0) {
+         clients = Integer.parseInt(args[0]);
+      }
+
+      long start = System.currentTimeMillis();
+      try {
+         new TransportStress().run(clients);
+      } catch(Exception e) {
+         System.out.println("FAILED: " + e.getMessage());
+         e.printStackTrace();
+         System.exit(1);
+      }
+      System.out.println("OK (" + (System.currentTimeMillis() - start) + " ms)");
+      System.exit(0);
+   }
+
+   private void run(int clients) throws Exception {
+      PrintStream err = System.err;
+      ByteArrayOutputStream serverErrors = new ByteArrayOutputStream();
+      System.setErr(new PrintStream(serverErrors, true)); //the server prints its stack traces there
+      try {
+         startServer();
+         chatAndLeave(clients);
+         stopServer();
+
+         startServer();
+         idleMemory(clients);
+         stopServer();
+
+         startServer();
+         stuckClient();
+         stopServer();
+      } finally {
+         System.setErr(err);
+      }
+
+      String[] lines = serverErrors.toString().split("\n");
+      check(serverErrors.size() == 0, "the server printed " + lines.length + " lines to System.err, starting with:\n"
+         + String.join("\n", Arrays.copyOf(lines, Math.min(lines.length, 10))));
+   }
+
+   private void startServer() throws IOException {
+      transport = new InMemoryTransport();
+      commands = new PipedOutputStream();
+      server = new ChatServer(transport, new PipedInputStream(commands), new PrintStream(OutputStream.nullOutputStream()));
+   }
+
+   /**
+    * Shut the server down and wait for its console thread to end, so that nothing of it is left for the next check
+    */
+   private void stopServer() throws Exception {
+      server.shutdown("");
+      commands.close(); //a console thread blocked on the pipe only wakes up when the writing side is closed
+      server.join(TIMEOUT);
+      check(!server.isAlive(), "the server console thread is still running after shutdown");
+   }
+
+   /**
+    * Connect the clients, chat, disconnect everyone in various ways and check the server state
+    * @param int count number of clients
+    */
+   private void chatAndLeave(int count) throws Exception {
+      final Transport.Connection[] clients = new Transport.Connection[count];
+      for(int i = 0; i < count; i++) {
+         clients[i] = transport.connect();
+         send(clients[i], "NCRs" + i);
+      }
+      for(int i = 0; i < count; i++) {
+         check("CON".equals(readFrame(clients[i])), "client s" + i + " was not connected");
+         send(clients[i], "SUBs" + ((i + 1) % count)); //follow the next client
+      }
+
+      //every observer reads everything it receives on its own thread
+      final int senders = (count + SENDER_EVERY - 1) / SENDER_EVERY;
+      ArrayList<Thread> observers = new ArrayList<Thread>();
+      final ArrayList<String> errors = new ArrayList<String>();
+      for(int i = 0; i < count; i += OBSERVER_EVERY) {
+         final int observer = i;
+         Thread t = new Thread(new Runnable() {
+            public void run() {
+               String error = observe(clients[observer], observer % SENDER_EVERY == 0 ? senders - 1 : senders);
+               if(error != null) {
+                  synchronized (errors) {
+                     errors.add("s" + observer + ": " + error);
+                  }
+               }
+            }
+         });
+         t.start();
+         observers.add(t);
+      }
+
+      //senders send concurrently, each one in order
+      ArrayList<Thread> senderThreads = new ArrayList<Thread>();
+      for(int i = 0; i < count; i += SENDER_EVERY) {
+         final Transport.Connection sender = clients[i];
+         final int id = i;
+         Thread t = new Thread(new Runnable() {
+            public void run() {
+               try {
+                  for(int k = 0; k < MESSAGES_PER_SENDER; k++) {
+                     send(sender, "SND" + k);
+                  }
+                  send(sender, "PRVs" + ((id + 1) % count) + "\3private");
+               } catch(IOException e) {
+                  synchronized (errors) {
+                     errors.add("s" + id + ": " + e);
+                  }
+               }
+            }
+         });
+         t.start();
+         senderThreads.add(t);
+      }
+      for(Thread t : senderThreads) {
+         t.join(TIMEOUT);
+         check(!t.isAlive(), "a sender could not send all its messages in time");
+      }
+      for(Thread t : observers) {
+         t.join(TIMEOUT);
+         check(!t.isAlive(), "an observer did not receive every message in time");
+      }
+      check(errors.isEmpty(), errors.toString());
+
+      //leave: kick a third, drop a third, the rest disconnect politely
+      StringBuilder kicks = new StringBuilder();
+      for(int i = 0; i < count; i++) {
+         if(i % 3 == 0) {
+            kicks.append("KICK s").append(i).append(" stress test\n");
+         } else if(i % 3 == 1) {
+            clients[i].close();
+         } else {
+            send(clients[i], "DSC");
+         }
+      }
+      commands.write(kicks.toString().getBytes());
+      commands.flush();
+
+      long deadline = System.currentTimeMillis() + TIMEOUT;
+      while(System.currentTimeMillis() < deadline && !serverIsEmpty()) {
+         Thread.sleep(50);
+      }
+      check(server.getConnectionCount() == 0, server.getConnectionCount() + " connections left in allConnections");
+      check(server.getRegisteredUserCount() == 0, server.getRegisteredUserCount() + " usernames left in usersByName");
+      check(server.getPresenceSubscriptionCount() == 0, server.getPresenceSubscriptionCount() + " users left in presenceSubscribers");
+      check(server.getBufferPool().getInUseBuffers() == 0, server.getBufferPool().getInUseBuffers() + " buffers not given back to the pool");
+      check(connectionThreads() == 0, connectionThreads() + " connection threads still alive");
+
+      for(Transport.Connection c : clients) {
+         c.close();
+      }
+   }
+
+   /**
+    * Connect idle clients and check the memory they hold: heap and direct memory per connection, and no I/O buffer,
+    * before and after a message larger than 1MB
+    * @param int count number of clients
+    */
+   private void idleMemory(int count) throws Exception {
+      BufferPool pool = server.getBufferPool();
+      long before = memoryUsed();
+      long idleBefore = pool.getIdleBytes();
+      Transport.Connection[] clients = new Transport.Connection[count];
+      for(int i = 0; i < count; i++) {
+         clients[i] = transport.connect();
+         send(clients[i], "NCRi" + i);
+      }
+      for(int i = 0; i < count; i++) {
+         check("CON".equals(readFrame(clients[i])), "client i" + i + " was not connected");
+      }
+      waitForNoBufferInUse(pool);
+      check(pool.getInUseBytes() == 0, count + " idle connections hold " + pool.getInUseBytes() + " bytes of buffers");
+      //spare buffers kept by the pool are bounded on their own (checked below), not per connection
+      long perConnection = (memoryUsed() - before - (pool.getIdleBytes() - idleBefore)) / count;
+      check(perConnection <= IDLE_BYTES_PER_CONNECTION, "an idle connection uses " + perConnection + " bytes, more than " + IDLE_BYTES_PER_CONNECTION);
+
+      //one large private message, read and written through buffers of every size class, followed by
+      //the start of the next message: those few bytes must not keep the large buffer borrowed
+      StringBuilder large = new StringBuilder("PRVi1\3");
+      for(int i = 0; i < LARGE_MESSAGE; i++) {
+         large.append((char)('a' + i % 26));
+      }
+      write(clients[0], large.toString() + '\0' + "PRVi1\3tail");
+      String received = readFrame(clients[1]);
+      check(received != null && received.length() == "PRVi0\3".length() + LARGE_MESSAGE, "large message not received whole");
+      long deadline = System.currentTimeMillis() + TIMEOUT;
+      while(System.currentTimeMillis() < deadline && pool.getInUseBuffers() != 1) {
+         Thread.sleep(10);
+      }
+      check(pool.getInUseBytes() == BufferPool.MIN_SIZE, "the end of a large message holds " + pool.getInUseBytes() + " bytes of buffers");
+      send(clients[0], "");
+      check("PRVi0\3tail".equals(readFrame(clients[1])), "message following the large one not received");
+
+      waitForNoBufferInUse(pool);
+      check(pool.getInUseBytes() == 0, "idle connections hold " + pool.getInUseBytes() + " bytes of buffers after a large message");
+      long maxIdle = BufferPool.NUM_CLASSES * BufferPool.MAX_IDLE_BYTES_PER_CLASS;
+      check(pool.getIdleBytes() <= maxIdle, "pool keeps " + pool.getIdleBytes() + " spare bytes, more than " + maxIdle);
+
+      for(Transport.Connection c : clients) {
+         send(c, "DSC");
+      }
+   }
+
+   /**
+    * A client stops reading while another one keeps sending. Once its pipe is full, the sender's connection
+    * thread blocks writing to it while holding its write lock, and the presence update that follows waits
+    * for that lock. With no further update, the client must still be dropped after PRESENCE_WRITE_TIMEOUT,
+    * which must also release the blocked sender.
+    */
+   private void stuckClient() throws Exception {
+      final int others = 100;
+      Transport.Connection stuck = transport.connect();
+      send(stuck, "NCRstuck");
+      check("CON".equals(readFrame(stuck)), "client stuck was not connected");
+      StringBuilder names = new StringBuilder("SUB");
+      for(int i = 0; i < others; i++) {
+         names.append(i == 0 ? "" : ",").append('w').append(i);
+      }
+      send(stuck, names.toString()); //stuck does not read anything after this
+
+      Transport.Connection talker = transport.connect();
+      send(talker, "NCRtalker");
+      check("CON".equals(readFrame(talker)), "client talker was not connected");
+      char[] text = new char[4096];
+      Arrays.fill(text, 'x');
+      for(int sent = 0; sent < InMemoryTransport.PIPE_CAPACITY * 3 / 2; sent += text.length) {
+         send(talker, "SND" + new String(text)); //more than the pipe of stuck holds, but not more than the pipe of talker can take in addition
+      }
+      long deadline = System.currentTimeMillis() + TIMEOUT;
+      while(System.currentTimeMillis() < deadline && blockedWriters() == 0) {
+         Thread.sleep(10);
+      }
+      check(blockedWriters() > 0, "writes to a client that does not read never blocked");
+
+      //presence changes for stuck, written behind the blocked messages
+      Transport.Connection[] clients = new Transport.Connection[others];
+      for(int i = 0; i < others; i++) {
+         clients[i] = transport.connect();
+         send(clients[i], "NCRw" + i);
+      }
+      for(int i = 0; i < others; i++) {
+         check("CON".equals(readFrame(clients[i])), "client w" + i + " was not connected");
+         clients[i].close();
+      }
+
+      deadline = System.currentTimeMillis() + ChatServer.PRESENCE_WRITE_TIMEOUT + TIMEOUT;
+      while(System.currentTimeMillis() < deadline && server.getConnectionCount() > 1) {
+         Thread.sleep(50);
+      }
+      check(server.getConnectionCount() == 1, "client stuck was not dropped for not receiving presence updates");
+      while(readFrame(stuck) != null); //the server has shut down its side
+
+      //the connection thread of talker is not blocked anymore
+      Transport.Connection listener = transport.connect();
+      send(listener, "NCRlistener");
+      check("CON".equals(readFrame(listener)), "client listener was not connected");
+      deadline = System.currentTimeMillis() + TIMEOUT;
+      while(System.currentTimeMillis() < deadline && server.getConnectionCount() < 2) {
+         Thread.sleep(10); //CON is sent before the listener is added to the recipients of messages
+      }
+      send(talker, "SNDafter");
+      String frame;
+      while((frame = readFrame(listener)) != null && !frame.equals("MSGtalker\3after")); //skip the rest of the long messages
+      check(frame != null, "message sent after the drop not received");
+
+      send(talker, "DSC");
+      send(listener, "DSC");
+      deadline = System.currentTimeMillis() + TIMEOUT;
+      while(System.currentTimeMillis() < deadline && !serverIsEmpty()) {
+         Thread.sleep(50);
+      }
+      check(serverIsEmpty(), "connections left after the drop of a stuck client");
+      stuck.close();
+      talker.close();
+      listener.close();
+   }
+
+   /**
+    * Wait until no buffer is borrowed from the pool (writes by other threads may still be finishing)
+    * @param BufferPool pool the pool of the server
+    */
+   private static void waitForNoBufferInUse(BufferPool pool) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + TIMEOUT;
+      while(System.currentTimeMillis() < deadline && pool.getInUseBuffers() != 0) {
+         Thread.sleep(10);
+      }
+   }
+
+   /**
+    * Read everything a client receives until it has seen the expected number of public messages,
+    * checking that the messages of each sender arrive in order
+    * @param  Transport.Connection client   the client to read from
+    * @param  int                  expected number of senders whose messages this client must receive
+    * @return String                        description of the problem, null if none
+    */
+   private String observe(Transport.Connection client, int expected) {
+      HashMap<String, Integer> nextFromSender = new HashMap<String, Integer>();
+      int done = 0;
+      try {
+         while(done < expected) {
+            String frame = readFrame(client);
+            if(frame == null) {
+               return "connection closed early";
+            }
+            if(!frame.startsWith("MSG")) {
+               continue; //presence updates, private messages
+            }
+            String sender = frame.substring(3, frame.indexOf('\3'));
+            int k = Integer.parseInt(frame.substring(frame.indexOf('\3') + 1));
+            Integer next = nextFromSender.get(sender);
+            int wanted = next == null ? 0 : next;
+            if(k != wanted) {
+               return "message " + k + " from " + sender + " received when " + wanted + " was expected";
+            }
+            nextFromSender.put(sender, k + 1);
+            if(k + 1 == MESSAGES_PER_SENDER) {
+               done++;
+            }
+         }
+      } catch(Exception e) {
+         return e.toString();
+      }
+      return null;
+   }
+
+   private boolean serverIsEmpty() {
+      return server.getConnectionCount() == 0 && server.getRegisteredUserCount() == 0
+         && server.getPresenceSubscriptionCount() == 0 && server.getBufferPool().getInUseBuffers() == 0
+         && connectionThreads() == 0;
+   }
+
+   /**
+    * @return int number of OpenSocket threads still running
+    */
+   private static int connectionThreads() {
+      int count = 0;
+      for(Thread t : Thread.getAllStackTraces().keySet()) {
+         if(t.getName().startsWith("connection-") && t.isAlive()) {
+            count++;
+         }
+      }
+      return count;
+   }
+
+   /**
+    * @return long bytes of heap still reachable after a garbage collection, plus direct memory in use
+    */
+   private static long memoryUsed() throws InterruptedException {
+      //a full collection may leave dead objects in place, only compacting them away every few collections: keep the lowest reading
+      long used = Long.MAX_VALUE;
+      for(int i = 0; i < 8; i++) {
+         System.gc();
+         Thread.sleep(20); //let cleaners free the direct memory of collected buffers
+         Runtime runtime = Runtime.getRuntime();
+         long now = runtime.totalMemory() - runtime.freeMemory();
+         for(BufferPoolMXBean bufferPool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if(bufferPool.getName().equals("direct")) {
+               now += bufferPool.getMemoryUsed();
+            }
+         }
+         used = Math.min(used, now);
+      }
+      return used;
+   }
+
+   /**
+    * @return int number of threads waiting for room in a full pipe
+    */
+   private static int blockedWriters() {
+      int count = 0;
+      for(Map.Entry<Thread, StackTraceElement[]> thread : Thread.getAllStackTraces().entrySet()) {
+         if(thread.getKey().getState() != Thread.State.WAITING) {
+            continue;
+         }
+         for(StackTraceElement frame : thread.getValue()) {
+            if(frame.getClassName().equals("InMemoryTransport$Pipe") && frame.getMethodName().equals("write")) {
+               count++;
+               break;
+            }
+         }
+      }
+      return count;
+   }
+
+   private static void send(Transport.Connection client, String message) throws IOException {
+      write(client, message + '\0');
+   }
+
+   private static void write(Transport.Connection client, String bytes) throws IOException {
+      ByteBuffer data = ByteBuffer.wrap(bytes.getBytes());
+      while(data.hasRemaining()) {
+         client.write(data);
+      }
+   }
+
+   /**
+    * Read the next message sent by the server
+    * @param  Transport.Connection client the client to read from
+    * @return String                      the message without its terminator, null if the connection ended
+    */
+   private static String readFrame(Transport.Connection client) throws IOException {
+      ByteArrayOutputStream frame = new ByteArrayOutputStream();
+      int b;
+      while((b = client.read()) > 0) {
+         frame.write(b);
+      }
+      if(b == -1) {
+         return null;
+      }
+      return frame.toString();
+   }
+
+   private static void check(boolean condition, String failure) {
+      if(!condition) {
+         throw new IllegalStateException(failure);
+      }
+   }
+}